@@ -0,0 +1,37 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it, so PDF object and xref offsets can be
+ * known without asking a file channel for its position. That lets the PDF
+ * go to stdout, a pipe or a socket as well as a file.
+ */
+final class CountingOutputStream extends FilterOutputStream {
+
+    private long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /** Bytes written so far, which is the offset of the next byte */
+    long count() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+}
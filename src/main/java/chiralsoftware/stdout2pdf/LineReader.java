@@ -0,0 +1,75 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads UTF-8 lines from a byte stream, keeping track of the byte position
+ * in the input so a page index can record where to seek to. Unlike
+ * BufferedReader.readLine() a carriage return doesn't end a line.
+ */
+final class LineReader implements Closeable {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private long position;
+
+    private byte[] line = new byte[256];
+
+    LineReader(InputStream in) {
+        this(in, 0);
+    }
+
+    /** @param position the byte offset in the input that the stream is already positioned at */
+    LineReader(InputStream in, long position) {
+        if(in == null) throw new NullPointerException("null input stream");
+        this.in = in;
+        this.position = position;
+    }
+
+    /** Byte offset of the start of the next line */
+    long position() {
+        return position;
+    }
+
+    /** Read the next line without its terminator, which can be \n or \r\n. A lone
+     \r stays in the line: it is a carriage return, which VirtualLine plays out.
+     Returns null at the end of input. */
+    String readLine() throws IOException {
+        int length = 0;
+        while(true) {
+            if(bufferPosition == bufferLimit && ! fill()) {
+                if(length == 0) return null;
+                return new String(line, 0, length, UTF_8);
+            }
+            final byte b = buffer[bufferPosition++];
+            position++;
+            if(b == '\n') {
+                if(length > 0 && line[length - 1] == '\r') length--;
+                return new String(line, 0, length, UTF_8);
+            }
+            if(length == line.length) line = Arrays.copyOf(line, length * 2);
+            line[length++] = b;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        final int read = in.read(buffer);
+        if(read <= 0) return false;
+        bufferPosition = 0;
+        bufferLimit = read;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
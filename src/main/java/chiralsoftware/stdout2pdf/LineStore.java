@@ -0,0 +1,224 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * A compact, append-only list of laid out lines. Instead of keeping a Line
+ * record with a list of Chunk records and Color objects for every line, the
+ * text is packed as UTF-8, each line is a fixed-size record pointing at its
+ * text and its runs, and each chunk is a run record of its byte offset within
+ * the line and an index into a small color palette. Text, line records and
+ * run records each go into a Spool: a bounded buffer which is moved to a temp
+ * file whenever it fills up. So the whole document can be kept around for
+ * two-pass output (page counts, summaries) in a small fixed heap, whatever
+ * the size of the input. Lines are rebuilt on get().
+ */
+final class LineStore extends AbstractList<Line> implements Closeable {
+
+    /** Default amount of text kept on the heap before spilling to disk */
+    static final int DEFAULT_MEMORY_THRESHOLD = 8 * 1024 * 1024;
+
+    /** text start, run start, text length, run count << 1 | overflow */
+    private static final int LINE_RECORD = 8 + 8 + 4 + 4;
+    /** byte offset within the line, palette index */
+    private static final int RUN_RECORD = 4 + 4;
+
+    private final List<Color> palette = new ArrayList<>();
+    private final Map<Color, Integer> paletteIndex = new HashMap<>();
+
+    private final Spool text;
+    private final Spool lines;
+    private final Spool runs;
+    private int lineCount = 0;
+
+    private final ByteBuffer record = ByteBuffer.allocate(LINE_RECORD);
+
+    LineStore() {
+        this(DEFAULT_MEMORY_THRESHOLD);
+    }
+
+    /** @param memoryThreshold heap for text; the line and run records get a quarter of it each */
+    LineStore(int memoryThreshold) {
+        if(memoryThreshold <= 0) throw new IllegalArgumentException("memory threshold must be positive: " + memoryThreshold);
+        text = new Spool(memoryThreshold);
+        lines = new Spool(Math.max(LINE_RECORD, memoryThreshold / 4));
+        runs = new Spool(Math.max(RUN_RECORD, memoryThreshold / 4));
+    }
+
+    @Override
+    public boolean add(Line line) {
+        if(line == null) throw new NullPointerException("Can't store null line");
+        final long textStart = text.size();
+        final long runStart = runs.size() / RUN_RECORD;
+        int offset = 0;
+        for(Chunk c : line.chunks()) {
+            final byte[] bytes = c.text().getBytes(UTF_8);
+            record.clear();
+            record.putInt(offset).putInt(colorIndex(c.color()));
+            runs.append(record.array(), RUN_RECORD);
+            text.append(bytes, bytes.length);
+            offset += bytes.length;
+        }
+        record.clear();
+        record.putLong(textStart).putLong(runStart).putInt(offset)
+                .putInt(line.chunks().size() << 1 | (line.overflow() ? 1 : 0));
+        lines.append(record.array(), LINE_RECORD);
+        lineCount++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public Line get(int index) {
+        if(index < 0 || index >= lineCount) throw new IndexOutOfBoundsException("line: " + index + ", size: " + lineCount);
+        final ByteBuffer lineRecord = ByteBuffer.wrap(lines.read((long) index * LINE_RECORD, LINE_RECORD));
+        final long textStart = lineRecord.getLong();
+        final long runStart = lineRecord.getLong();
+        final int textLength = lineRecord.getInt();
+        final int flags = lineRecord.getInt();
+        final int runCount = flags >>> 1;
+
+        final byte[] bytes = text.read(textStart, textLength);
+        final ByteBuffer runRecords = ByteBuffer.wrap(runs.read(runStart * RUN_RECORD, runCount * RUN_RECORD));
+        final List<Chunk> chunks = new ArrayList<>(runCount);
+        int from = runCount > 0 ? runRecords.getInt() : 0;
+        int color = runCount > 0 ? runRecords.getInt() : 0;
+        for(int r = 0; r < runCount; r++) {
+            final int to = r + 1 < runCount ? runRecords.getInt() : bytes.length;
+            chunks.add(new Chunk(palette.get(color), new String(bytes, from, to - from, UTF_8)));
+            if(r + 1 < runCount) color = runRecords.getInt();
+            from = to;
+        }
+        return new Line(unmodifiableList(chunks), (flags & 1) != 0);
+    }
+
+    @Override
+    public int size() {
+        return lineCount;
+    }
+
+    /** All the distinct colors used by the stored lines, in order of first use */
+    List<Color> palette() {
+        return unmodifiableList(palette);
+    }
+
+    /** True if some of the lines have been moved to temp files */
+    boolean isSpilled() {
+        return text.isSpilled() || lines.isSpilled() || runs.isSpilled();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (text; lines; runs) {
+            // each spool deletes its own file
+        }
+    }
+
+    private int colorIndex(Color color) {
+        final Integer index = paletteIndex.get(color);
+        if(index != null) return index;
+        palette.add(color);
+        paletteIndex.put(color, palette.size() - 1);
+        return palette.size() - 1;
+    }
+
+    /**
+     * Append-only bytes. Appends go into a buffer which grows up to a fixed
+     * capacity; when it is full it is written to the end of a delete-on-close
+     * temp file and starts over. Reads can span the file and the buffer.
+     */
+    private static final class Spool implements Closeable {
+        private final int capacity;
+        private byte[] buffer = new byte[4 * 1024];
+        private int buffered = 0;
+        private long spilled = 0;
+        private FileChannel file;
+
+        Spool(int capacity) {
+            this.capacity = capacity;
+        }
+
+        long size() {
+            return spilled + buffered;
+        }
+
+        boolean isSpilled() {
+            return file != null;
+        }
+
+        void append(byte[] bytes, int length) {
+            int done = 0;
+            while(done < length) {
+                if(buffered == buffer.length) {
+                    if(buffer.length < capacity) buffer = Arrays.copyOf(buffer, Math.min(capacity, buffer.length * 2));
+                    else spill();
+                }
+                final int n = Math.min(length - done, buffer.length - buffered);
+                System.arraycopy(bytes, done, buffer, buffered, n);
+                buffered += n;
+                done += n;
+            }
+        }
+
+        byte[] read(long position, int length) {
+            final byte[] result = new byte[length];
+            // the part which is on disk
+            final int fromFile = (int) Math.max(0, Math.min(length, spilled - position));
+            if(fromFile > 0) {
+                final ByteBuffer bb = ByteBuffer.wrap(result, 0, fromFile);
+                try {
+                    while(bb.hasRemaining()) {
+                        if(file.read(bb, position + bb.position()) < 0)
+                            throw new IOException("spill file truncated at: " + (position + bb.position()));
+                    }
+                } catch(IOException ioe) {
+                    throw new UncheckedIOException("Couldn't read spilled lines", ioe);
+                }
+            }
+            // the part which is still in memory
+            if(fromFile < length) {
+                System.arraycopy(buffer, (int) (position + fromFile - spilled), result, fromFile, length - fromFile);
+            }
+            return result;
+        }
+
+        private void spill() {
+            try {
+                if(file == null) {
+                    final Path path = Files.createTempFile("stdout2pdf", ".lines");
+                    file = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+                }
+                final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, buffered);
+                while(bb.hasRemaining()) file.write(bb, spilled + bb.position());
+            } catch(IOException ioe) {
+                throw new UncheckedIOException("Couldn't spill lines to disk", ioe);
+            }
+            spilled += buffered;
+            buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(file != null) file.close();
+        }
+    }
+
+}
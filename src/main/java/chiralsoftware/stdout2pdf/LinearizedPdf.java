@@ -0,0 +1,352 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a linearized ("fast web view") PDF, as described in Annex F of the
+ * PDF spec. The linearization dictionary, a cross-reference section for the
+ * first page, the catalog, page tree, hint stream and everything the first
+ * page needs come first, so a viewer can show page one after the first few
+ * KB and fetch other pages by byte range. The other pages follow, then the
+ * main cross-reference table.
+ * Object numbers: pages 2..N are objects 1..m, two objects per page, and the
+ * first page section is numbered from m + 1:
+ <pre>
+ m+1 linearization dictionary   m+5 first page
+ m+2 catalog                    m+6 first page content
+ m+3 page tree                  m+7 font, shared by all pages
+ m+4 hint stream
+ </pre>
+ * Because the linearization dictionary holds the file length, every page has
+ * to be rendered before the first byte is written. Only the first page is
+ * kept in memory: the content objects of the other pages are spooled to a
+ * temp file, and their lengths are all the offset and hint table arithmetic
+ * needs. Their page objects are small and made again when they are written.
+ */
+final class LinearizedPdf implements Closeable {
+
+    /** Objects in the first page cross-reference section, the linearization dictionary included */
+    private static final int firstPageObjects = 7;
+
+    private final boolean deflated;
+    private byte[] firstPageContent;
+    private int pageCount = 0;
+    /** Lengths of the spooled content objects of pages 2..N */
+    private int[] contentLengths = new int[1024];
+    private Path spoolPath;
+    private OutputStream spool;
+
+    /** @param deflated true if the page contents are Flate compressed */
+    LinearizedPdf(boolean deflated) {
+        this.deflated = deflated;
+    }
+
+    int pageCount() {
+        return pageCount;
+    }
+
+    /** Add the next page's content stream. Every page after the first goes to the spool file. */
+    void addPage(byte[] content) throws IOException {
+        if(pageCount == 0) {
+            firstPageContent = content;
+            pageCount++;
+            return;
+        }
+        if(spool == null) {
+            spoolPath = Files.createTempFile("stdout2pdf", ".pages");
+            spool = new BufferedOutputStream(Files.newOutputStream(spoolPath), 64 * 1024);
+        }
+        final byte[] contentObject = object(pageRef(pageCount) + 1, Stdout2pdf2.contentObject(content, deflated));
+        if(pageCount - 1 == contentLengths.length) contentLengths = Arrays.copyOf(contentLengths, contentLengths.length * 2);
+        contentLengths[pageCount - 1] = contentObject.length;
+        spool.write(contentObject);
+        pageCount++;
+    }
+
+    /** Object number of the page object for the zero-based page */
+    private int pageRef(int page) {
+        return page == 0 ? firstRef() + 4 : 2 * (page - 1) + 1;
+    }
+
+    /** Object number of the linearization dictionary, the first object in the first page section */
+    private int firstRef() {
+        return 2 * (pageCount - 1) + 1;
+    }
+
+    private byte[] pageObject(int page) throws IOException {
+        final int ref = pageRef(page);
+        return object(ref, Stdout2pdf2.pageObject(firstRef() + 2, ref + 1, firstRef() + 6));
+    }
+
+    void write(OutputStream os) throws IOException {
+        if(pageCount == 0) throw new IOException("can't linearize a PDF with no pages");
+        if(spool != null) spool.close();
+
+        final int first = firstRef(); // the linearization dictionary
+        final int catalogRef = first + 1;
+        final int pagesRef = first + 2;
+        final int hintRef = first + 3;
+        final int firstPageRef = first + 4;
+        final int fontRef = first + 6;
+        final int size = first + firstPageObjects;
+
+        final byte[] catalog = object(catalogRef, Stdout2pdf2.catalogObject(pagesRef));
+        final List<Integer> kids = new ArrayList<>();
+        for(int i = 0; i < pageCount; i++) kids.add(pageRef(i));
+        final byte[] pages = object(pagesRef, Stdout2pdf2.pagesObject(kids));
+        final byte[] font = object(fontRef, Stdout2pdf2.fontObject());
+        final byte[] firstPageObject = pageObject(0);
+        final byte[] firstContentObject = object(firstPageRef + 1, Stdout2pdf2.contentObject(firstPageContent, deflated));
+
+        // object lengths for every page, first page first
+        final int[] pageObjectLengths = new int[pageCount];
+        final int[] contentObjectLengths = new int[pageCount];
+        pageObjectLengths[0] = firstPageObject.length;
+        contentObjectLengths[0] = firstContentObject.length;
+        for(int i = 1; i < pageCount; i++) {
+            pageObjectLengths[i] = pageObject(i).length;
+            contentObjectLengths[i] = contentLengths[i - 1];
+        }
+
+        // the hint stream length doesn't depend on the offsets in it, so lay out with a dummy first
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        Stdout2pdf2.writeHeader(header);
+        final long linearizedOffset = header.size();
+        final int linearizedLength = linearizationDictionary(first, 0, 0, 0, 0, pageCount, 0).length;
+        final long firstXrefOffset = linearizedOffset + linearizedLength;
+        final int firstXrefLength = firstPageXref(first, new long[firstPageObjects], size, 0).length;
+        final long catalogOffset = firstXrefOffset + firstXrefLength;
+        final long hintOffset = catalogOffset + catalog.length + pages.length;
+        final int hintLength = hintStream(hintRef, 0, pageObjectLengths, contentObjectLengths, font.length).length;
+        final long firstPageOffset = hintOffset + hintLength;
+        final long endOfFirstPage = firstPageOffset + firstPageObject.length + firstContentObject.length + font.length;
+
+        final long[] offsets = new long[size];
+        offsets[first] = linearizedOffset;
+        offsets[catalogRef] = catalogOffset;
+        offsets[pagesRef] = catalogOffset + catalog.length;
+        offsets[hintRef] = hintOffset;
+        offsets[firstPageRef] = firstPageOffset;
+        offsets[firstPageRef + 1] = firstPageOffset + firstPageObject.length;
+        offsets[fontRef] = offsets[firstPageRef + 1] + firstContentObject.length;
+        long position = endOfFirstPage;
+        for(int i = 1; i < pageCount; i++) {
+            final int ref = pageRef(i);
+            offsets[ref] = position;
+            position += pageObjectLengths[i];
+            offsets[ref + 1] = position;
+            position += contentObjectLengths[i];
+        }
+        final long mainXrefOffset = position;
+        final byte[] mainXref = mainXref(offsets, first, firstXrefOffset);
+        // the whitespace before the entry for object 0
+        final long mainXrefFirstEntry = mainXrefOffset + ("xref\n0 " + first).length();
+        final long fileLength = mainXrefOffset + mainXref.length;
+
+        final long[] firstOffsets = new long[firstPageObjects];
+        System.arraycopy(offsets, first, firstOffsets, 0, firstPageObjects);
+        final byte[] hint = hintStream(hintRef, hintOffset, pageObjectLengths, contentObjectLengths, font.length);
+        if(hint.length != hintLength) throw new IllegalStateException("hint stream length changed");
+
+        header.writeTo(os);
+        os.write(linearizationDictionary(first, fileLength, hintOffset, hintLength, endOfFirstPage,
+                pageCount, mainXrefFirstEntry));
+        os.write(firstPageXref(first, firstOffsets, size, mainXrefOffset));
+        os.write(catalog);
+        os.write(pages);
+        os.write(hint);
+        os.write(firstPageObject);
+        os.write(firstContentObject);
+        os.write(font);
+        if(spool != null) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(spoolPath), 64 * 1024)) {
+                for(int i = 1; i < pageCount; i++) {
+                    os.write(pageObject(i));
+                    final byte[] contentObject = in.readNBytes(contentObjectLengths[i]);
+                    if(contentObject.length != contentObjectLengths[i]) throw new IOException("page spool truncated");
+                    os.write(contentObject);
+                }
+            }
+        }
+        os.write(mainXref);
+    }
+
+    /** Delete the spool file */
+    @Override
+    public void close() throws IOException {
+        if(spool != null) spool.close();
+        if(spoolPath != null) Files.deleteIfExists(spoolPath);
+    }
+
+    private static byte[] object(int objNum, byte[] content) throws IOException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write((objNum + " 0 obj\n").getBytes());
+        result.write(content);
+        result.write("\nendobj\n".getBytes());
+        return result.toByteArray();
+    }
+
+    /** Numbers are padded to a fixed width so the length is known before the values are */
+    private static byte[] linearizationDictionary(int objNum, long fileLength, long hintOffset, int hintLength,
+            long endOfFirstPage, int pageCount, long mainXrefFirstEntry) throws IOException {
+        return object(objNum, String.format("<< /Linearized 1 /L %10d /H [ %10d %10d ] /O %d /E %10d /N %d /T %10d >>",
+                fileLength, hintOffset, hintLength, objNum + 4, endOfFirstPage, pageCount, mainXrefFirstEntry).getBytes());
+    }
+
+    private static byte[] firstPageXref(int first, long[] offsets, int size, long mainXrefOffset) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("xref\n").append(first).append(' ').append(firstPageObjects).append('\n');
+        for(int i = 0; i < firstPageObjects; i++) sb.append(String.format("%010d 00000 n \n", offsets[i]));
+        sb.append(String.format("trailer\n<< /Size %d /Root %d 0 R /Prev %10d >>\nstartxref\n0\n%%%%EOF\n",
+                size, first + 1, mainXrefOffset));
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] mainXref(long[] offsets, int first, long firstXrefOffset) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("xref\n0 ").append(first).append("\n0000000000 65535 f \n");
+        for(int i = 1; i < first; i++) sb.append(String.format("%010d 00000 n \n", offsets[i]));
+        sb.append("trailer\n<< /Size ").append(first).append(" >>\nstartxref\n")
+                .append(firstXrefOffset).append("\n%%EOF\n");
+        return sb.toString().getBytes();
+    }
+
+    /** The primary hint stream: a page offset hint table followed by a shared object
+     hint table. Offsets in hint tables are given as if the hint stream were not there. */
+    private static byte[] hintStream(int objNum, long hintOffset,
+            int[] pageObjects, int[] contentObjects, int fontLength) throws IOException {
+        final int pageCount = pageObjects.length;
+        final long[] objects = new long[pageCount];
+        final long[] lengths = new long[pageCount];
+        final long[] contentOffsets = new long[pageCount];
+        final long[] contentLengths = new long[pageCount];
+        final long[] sharedRefs = new long[pageCount];
+        for(int i = 0; i < pageCount; i++) {
+            objects[i] = i == 0 ? 3 : 2;
+            lengths[i] = pageObjects[i] + contentObjects[i] + (i == 0 ? fontLength : 0);
+            contentOffsets[i] = pageObjects[i];
+            contentLengths[i] = contentObjects[i];
+            // the first page's shared objects are in its own section
+            sharedRefs[i] = i == 0 ? 0 : 1;
+        }
+        // shared object table entries are the objects of the first page section
+        final long[] groupLengths = { pageObjects[0], contentObjects[0], fontLength };
+        final long fontIdentifier = 2;
+
+        final BitWriter w = new BitWriter();
+        // page offset hint table header
+        w.write(min(objects), 32);
+        w.write(hintOffset, 32); // first page object starts right after the hint stream
+        w.write(bits(max(objects) - min(objects)), 16);
+        w.write(min(lengths), 32);
+        w.write(bits(max(lengths) - min(lengths)), 16);
+        w.write(min(contentOffsets), 32);
+        w.write(bits(max(contentOffsets) - min(contentOffsets)), 16);
+        w.write(min(contentLengths), 32);
+        w.write(bits(max(contentLengths) - min(contentLengths)), 16);
+        w.write(bits(max(sharedRefs)), 16);
+        w.write(bits(fontIdentifier), 16);
+        w.write(0, 16); // no fractional positions
+        w.write(0, 16);
+        // per page entries, one item for every page at a time, each byte aligned
+        writeDeltas(w, objects);
+        writeDeltas(w, lengths);
+        for(long n : sharedRefs) w.write(n, bits(max(sharedRefs)));
+        w.align();
+        for(long n : sharedRefs) if(n > 0) w.write(fontIdentifier, bits(fontIdentifier));
+        w.align();
+        // numerators take no bits
+        writeDeltas(w, contentOffsets);
+        writeDeltas(w, contentLengths);
+
+        final int sharedTable = w.size();
+        // shared object hint table header. There is no shared object section.
+        w.write(0, 32);
+        w.write(0, 32);
+        w.write(groupLengths.length, 32);
+        w.write(groupLengths.length, 32);
+        w.write(0, 16); // every group is one object
+        w.write(min(groupLengths), 32);
+        w.write(bits(max(groupLengths) - min(groupLengths)), 16);
+        writeDeltas(w, groupLengths);
+        for(int i = 0; i < groupLengths.length; i++) w.write(0, 1); // no signatures
+        w.align();
+        // object counts take no bits
+
+        final byte[] data = w.toByteArray();
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(("<< /Length " + data.length + " /S " + sharedTable + " >>\nstream\n").getBytes());
+        stream.write(data);
+        stream.write("\nendstream".getBytes());
+        return object(objNum, stream.toByteArray());
+    }
+
+    private static void writeDeltas(BitWriter w, long[] values) {
+        final long least = min(values);
+        final int bits = bits(max(values) - least);
+        for(long v : values) w.write(v - least, bits);
+        w.align();
+    }
+
+    private static long min(long[] values) {
+        long result = Long.MAX_VALUE;
+        for(long v : values) result = Math.min(result, v);
+        return result;
+    }
+
+    private static long max(long[] values) {
+        long result = Long.MIN_VALUE;
+        for(long v : values) result = Math.max(result, v);
+        return result;
+    }
+
+    /** Bits needed to hold the value */
+    private static int bits(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /** Packs values into a big-endian bit stream, as hint tables are */
+    private static final class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current = 0;
+        private int used = 0;
+
+        void write(long value, int bits) {
+            for(int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                if(++used == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    used = 0;
+                }
+            }
+        }
+
+        /** Pad to a byte boundary */
+        void align() {
+            if(used > 0) write(0, 8 - used);
+        }
+
+        /** Bytes written so far, not counting a partial byte */
+        int size() {
+            return bytes.size();
+        }
+
+        byte[] toByteArray() {
+            align();
+            return bytes.toByteArray();
+        }
+    }
+
+}
@@ -0,0 +1,133 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.lang.System.err;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * An on-disk cache of finished page content streams, keyed by a SHA-256 hash
+ * of the page's laid out lines and the render settings. Reports regenerated
+ * from mostly unchanged logs then only render the pages which changed. Each
+ * entry is one file; a hit touches its modification time, and evict() deletes
+ * the least recently used entries until the cache fits in its size limit.
+ */
+final class PageCache {
+
+    /** Bump this when the content stream format changes, so old entries stop matching */
+    private static final String VERSION = "1";
+    private static final String SUFFIX = ".page";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    PageCache(Path directory, long maxBytes) throws IOException {
+        if(maxBytes < 0) throw new IllegalArgumentException("cache size can't be negative: " + maxBytes);
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+    }
+
+    /** The key for a page: everything that goes into its content stream */
+    static String key(String settings, List<Line> lines) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("no SHA-256", nsae);
+        }
+        digest.update((VERSION + "\u0000" + settings + "\u0000").getBytes(UTF_8));
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        for(Line line : lines) {
+            digest.update((byte) (line.overflow() ? 'O' : 'L'));
+            for(Chunk c : line.chunks()) {
+                final byte[] text = c.text().getBytes(UTF_8);
+                buffer.clear();
+                buffer.putFloat(c.color().r()).putFloat(c.color().g()).putFloat(c.color().b()).putInt(text.length);
+                digest.update(buffer.array(), 0, buffer.position());
+                digest.update(text);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** The cached content stream, or null if there isn't one */
+    byte[] get(String key) {
+        final Path path = directory.resolve(key + SUFFIX);
+        try {
+            final byte[] result = Files.readAllBytes(path);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return result;
+        } catch(NoSuchFileException nsfe) {
+            return null;
+        } catch(IOException ioe) {
+            err.println("page cache: couldn't read " + path + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /** Store a content stream. A failure to write only costs a re-render next time. */
+    void put(String key, byte[] content) {
+        final Path path = directory.resolve(key + SUFFIX);
+        try {
+            final Path temp = Files.createTempFile(directory, key, ".tmp");
+            try {
+                Files.write(temp, content);
+                Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch(IOException ioe) {
+            err.println("page cache: couldn't write " + path + ": " + ioe.getMessage());
+        }
+    }
+
+    /** Delete least recently used entries until the cache is no bigger than its limit.
+     Like get and put, a failure is only logged: the cache just stays bigger for now. */
+    void evict() {
+        record Entry(Path path, long size, FileTime lastUsed) { }
+        final List<Entry> entries = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for(Path path : (Iterable<Path>) files::iterator) {
+                if(! path.getFileName().toString().endsWith(SUFFIX) || ! Files.isRegularFile(path)) continue;
+                try {
+                    final Entry entry = new Entry(path, Files.size(path), Files.getLastModifiedTime(path));
+                    entries.add(entry);
+                    total += entry.size();
+                } catch(IOException ioe) {
+                    // most likely evicted by another run while we were listing
+                }
+            }
+        } catch(IOException | UncheckedIOException e) {
+            err.println("page cache: couldn't list " + directory + ": " + e.getMessage());
+            return;
+        }
+        entries.sort(Comparator.comparing(Entry::lastUsed));
+        for(Entry entry : entries) {
+            if(total <= maxBytes) break;
+            try {
+                Files.deleteIfExists(entry.path());
+                total -= entry.size();
+            } catch(IOException ioe) {
+                err.println("page cache: couldn't delete " + entry.path() + ": " + ioe.getMessage());
+            }
+        }
+    }
+
+}
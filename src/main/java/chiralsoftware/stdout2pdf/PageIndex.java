@@ -0,0 +1,108 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A sidecar index of checkpoints for random access to pages. Every interval
+ * pages it records where the input line holding the first line of that page
+ * starts, how many laid out lines of that input line belong to the previous
+ * page, and the text color at the start of that input line. With it a page
+ * range can be rendered by seeking instead of laying out the whole input.
+ * The file is plain text:
+ <pre>
+ stdout2pdf-index 1 &lt;lines per page&gt; &lt;interval&gt; &lt;input length&gt;
+ &lt;page&gt; &lt;offset&gt; &lt;skip&gt; &lt;r&gt; &lt;g&gt; &lt;b&gt;
+ ...
+ </pre>
+ */
+final class PageIndex {
+
+    private static final String MAGIC = "stdout2pdf-index";
+    private static final int VERSION = 1;
+
+    /** @param page zero-based page number
+     * @param offset byte offset of the input line which starts this page
+     * @param skip laid out lines of that input line which are on earlier pages
+     * @param color text color at the start of that input line */
+    record Checkpoint(int page, long offset, int skip, Color color) { }
+
+    private final int linesPerPage;
+    private final int interval;
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+
+    PageIndex(int linesPerPage, int interval) {
+        if(linesPerPage <= 0) throw new IllegalArgumentException("lines per page must be positive: " + linesPerPage);
+        if(interval <= 0) throw new IllegalArgumentException("index interval must be positive: " + interval);
+        this.linesPerPage = linesPerPage;
+        this.interval = interval;
+    }
+
+    /** Called for each input line as it is laid out.
+     * @param firstLine number of the first laid out line this input line produced
+     * @param endLine one past the last laid out line it produced
+     * @param offset byte offset of the input line
+     * @param color text color before the input line */
+    void mark(long firstLine, long endLine, long offset, Color color) {
+        final long step = (long) linesPerPage * interval;
+        for(long boundary = (firstLine + step - 1) / step * step; boundary < endLine; boundary += step) {
+            checkpoints.add(new Checkpoint((int) (boundary / linesPerPage), offset,
+                    (int) (boundary - firstLine), color));
+        }
+    }
+
+    /** The last checkpoint at or before the given zero-based page */
+    Checkpoint nearest(int page) {
+        Checkpoint result = null;
+        for(Checkpoint c : checkpoints) {
+            if(c.page() > page) break;
+            result = c;
+        }
+        return result != null ? result : new Checkpoint(0, 0, 0, Color.BLACK);
+    }
+
+    void write(Path path, long inputLength) throws IOException {
+        try (BufferedWriter w = Files.newBufferedWriter(path, UTF_8)) {
+            w.write(MAGIC + " " + VERSION + " " + linesPerPage + " " + interval + " " + inputLength + "\n");
+            for(Checkpoint c : checkpoints) {
+                final Color color = c.color();
+                w.write(c.page() + " " + c.offset() + " " + c.skip() + " "
+                        + color.r() + " " + color.g() + " " + color.b() + "\n");
+            }
+        }
+    }
+
+    /** Read an index, checking that it was made with the same page size for an input of this length */
+    static PageIndex read(Path path, int linesPerPage, long inputLength) throws IOException {
+        try (BufferedReader br = Files.newBufferedReader(path, UTF_8)) {
+            final String header = br.readLine();
+            final String[] fields = header == null ? new String[0] : header.split(" ");
+            if(fields.length != 5 || ! fields[0].equals(MAGIC) || ! fields[1].equals(Integer.toString(VERSION)))
+                throw new IOException("not a page index: " + path);
+            if(Integer.parseInt(fields[2]) != linesPerPage)
+                throw new IOException("page index " + path + " was made for " + fields[2] + " lines per page");
+            if(Long.parseLong(fields[4]) != inputLength)
+                throw new IOException("page index " + path + " is stale: input length changed");
+            final PageIndex result = new PageIndex(linesPerPage, Integer.parseInt(fields[3]));
+            String line;
+            while((line = br.readLine()) != null) {
+                if(line.isBlank()) continue;
+                final String[] f = line.split(" ");
+                if(f.length != 6) throw new IOException("bad page index line: " + line);
+                result.checkpoints.add(new Checkpoint(Integer.parseInt(f[0]), Long.parseLong(f[1]), Integer.parseInt(f[2]),
+                        new Color(Float.parseFloat(f[3]), Float.parseFloat(f[4]), Float.parseFloat(f[5]))));
+            }
+            return result;
+        } catch(NumberFormatException nfe) {
+            throw new IOException("bad page index: " + path, nfe);
+        }
+    }
+
+}
@@ -1,15 +1,11 @@
 package chiralsoftware.stdout2pdf;
 
 import static chiralsoftware.stdout2pdf.Color.BLACK;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.ArrayList;
 
 import static chiralsoftware.stdout2pdf.Color.RED;
-import static java.util.Collections.unmodifiableList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import static java.util.stream.Collectors.joining;
 
 /**
@@ -18,9 +14,6 @@ import static java.util.stream.Collectors.joining;
 public class PageMaker {
 
     private static final int lineLength = 80;
-    private static final int tabWidth = 8;
-    
-    private static final Pattern ANSI_PATTERN = Pattern.compile("\u001B\\[[;\\d]*[A-Za-z]");
 
     private static int lengthOfLineOfChunks(List<Chunk> chunks) {
         int result = 0;
@@ -28,55 +21,11 @@ public class PageMaker {
         return result;
     }
     
-    private static String fixTabs(String input, int offset) {
-        final StringBuilder sb = new StringBuilder();
-        for(int i = 0; i < input.length(); i++ ) {
-            final char c = input.charAt(i);
-            if(c == '\t') {
-                final int spacesToAdd = tabWidth - (i + offset) % tabWidth;
-                for(int x = 0; x < spacesToAdd; x++) sb.append(" ");
-            } else {
-                sb.append(c);
-            }
-        }
-        return sb.toString();
-    }
-    
-    private static int counter = 0;
-    /** Take one line, which could be long, and turn it into tokens, dealing
-     with tabs */
-    static List<Token> stringToTokens(String s) {
-            final Matcher matcher = ANSI_PATTERN.matcher(s);
-            int lastEnd = 0;
-            final List<Token> result = new ArrayList<>();
-            int offset = 0;
-
-            while (matcher.find()) {
-                // Add the text before the delimiter
-                final String fixed = fixTabs(s.substring(lastEnd, matcher.start()), offset);
-                if(! fixed.isEmpty()) result.add(new StringToken(fixed));
-
-                offset += fixed.length();
-                // Add the captured delimiter
-                final String matchedAnsi = matcher.group(0);
-                if(isVisibleAnsi(matchedAnsi)) result.add(new ColorToken(matchedAnsi));
-                lastEnd = matcher.end();
-            }
-            // Add any remaining text after the last delimiter
-            final String remainder = s.substring(lastEnd);
-            if(! remainder.isEmpty()) {
-                final StringToken remainderToken = new StringToken(fixTabs(remainder, offset));
-
-                result.add(remainderToken);
-            }
-            counter++;
-
-            return result;
-    }
-
-    /** This should pick out ANSI codes which will be ignored - essentially cursor movement codes */
-    private static boolean isVisibleAnsi(String ansiString) {
-        return ! ansiString.substring(ansiString.indexOf("[")).equals("[K");
+    /** Take one line, which could be long, and turn it into tokens. Carriage returns,
+     tabs, erase-line and cursor codes are played on a VirtualLine first, so only the
+     final state of the line comes out. */
+    static List<Token> stringToTokens(String s, Color color) {
+        return VirtualLine.tokens(s, color);
     }
 
     /** Take a single input string, which is one line, and split to possibly
@@ -86,7 +35,7 @@ public class PageMaker {
         final List<Line> result = new ArrayList<>();
 
         final List<Token> tokens = new ArrayList<>();
-        tokens.addAll(stringToTokens(s));
+        tokens.addAll(stringToTokens(s, context.getColor()));
    
         List<Chunk> lineOfChunks = new ArrayList<>();
         while(! tokens.isEmpty()) {
@@ -116,23 +65,52 @@ public class PageMaker {
         return result;
     }
 
-    /** Fully read a set of lines from a BufferedReader and make a list of Line objects */
-    static List<Line> makeLines(BufferedReader br) throws Exception {
-        String line;
-        final List<Line> result = new ArrayList<>();
+    /** Lays out input lines one at a time, carrying the text color from line to
+     line and recording page index checkpoints as page boundaries go by. */
+    static final class Layout {
+        private final TextContext textContext;
+        private final PageIndex index;
+        private long lineCount = 0;
+
+        /** @param index where to record checkpoints, or null */
+        Layout(TextContext textContext, PageIndex index) {
+            this.textContext = textContext;
+            this.index = index;
+        }
+
+        /** Lay out one input line which starts at the given byte offset in the input */
+        List<Line> add(String line, long offset) {
+            final Color color = textContext.getColor();
+            final List<Line> lines = makeLines(textContext, line);
+            if(index != null) index.mark(lineCount, lineCount + lines.size(), offset, color);
+            lineCount += lines.size();
+            return lines;
+        }
+
+        /** Lines laid out so far */
+        long lineCount() {
+            return lineCount;
+        }
+    }
+
+    /** Fully read a set of lines and pack them into a LineStore, which spills to
+     disk for large inputs. The caller should close it. */
+    static LineStore makeLines(LineReader reader) throws IOException {
         final TextContext textContext = new TextContext();
         textContext.setColor(BLACK);
-        while((line = br.readLine()) != null) {
-            final List<Line> lines = makeLines(textContext, line); 
-            result.addAll(lines);
+        final Layout layout = new Layout(textContext, null);
+        final LineStore result = new LineStore();
+        String line;
+        long offset = reader.position();
+        while((line = reader.readLine()) != null) {
+            result.addAll(layout.add(line, offset));
+            offset = reader.position();
         }
-        return unmodifiableList(result);
-        
+        return result;
     }
     
     public static void main(String[] args) throws Exception {
-        final BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-        final List<Line> lines = makeLines(br);
+        final List<Line> lines = makeLines(new LineReader(System.in));
         int i = 0;
             for(Line l : lines) {
                 System.out.println(l.chunks().stream().map(Chunk::text).collect(joining("")));
@@ -0,0 +1,88 @@
+package chiralsoftware.stdout2pdf;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the stages of a conversion on their own threads, connected by bounded
+ * queues of batches so a fast stage blocks instead of running ahead of a slow
+ * one. An empty batch marks the end of a stream. The thread which creates
+ * the pipeline is normally the last stage. If any stage fails, every other
+ * stage is interrupted and the failure is rethrown from checkFailure().
+ */
+final class Pipeline implements AutoCloseable {
+
+    /** The end of stream marker. Stages never put other empty batches on a queue. */
+    private static final List<?> END = List.of();
+
+    interface Stage {
+        void run() throws Exception;
+    }
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "stdout2pdf-stage");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Thread owner = Thread.currentThread();
+    private volatile Throwable failure;
+
+    /** A bounded queue between two stages */
+    <T> BlockingQueue<List<T>> queue(int capacity) {
+        return new ArrayBlockingQueue<>(capacity);
+    }
+
+    /** Start a stage on its own thread. Cancelling the returned future stops the stage
+     quietly, which is how a downstream stage stops reading that it no longer needs. */
+    Future<?> start(String name, Stage stage) {
+        return executor.submit(() -> {
+            Thread.currentThread().setName("stdout2pdf-" + name);
+            try {
+                stage.run();
+            } catch(InterruptedException ie) {
+                // cancelled, or another stage has already failed
+            } catch(Throwable t) {
+                fail(t);
+            }
+        });
+    }
+
+    /** The batch to put on a queue when a stage has nothing more to send */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> end() {
+        return (List<T>) END;
+    }
+
+    static boolean isEnd(List<?> batch) {
+        return batch.isEmpty();
+    }
+
+    private synchronized void fail(Throwable t) {
+        if(failure != null) return;
+        failure = t;
+        executor.shutdownNow();
+        owner.interrupt();
+    }
+
+    /** Rethrow the failure of any stage. Clears the interrupt the failure caused on the owner thread. */
+    void checkFailure() throws IOException {
+        final Throwable t = failure;
+        if(t == null) return;
+        Thread.interrupted();
+        if(t instanceof IOException ioe) throw ioe;
+        if(t instanceof RuntimeException re) throw re;
+        if(t instanceof Error e) throw e;
+        throw new IOException(t.getMessage(), t);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+}
@@ -1,15 +1,12 @@
 package chiralsoftware.stdout2pdf;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import static java.lang.System.err;
 import static java.lang.System.exit;
 
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
@@ -80,57 +77,95 @@ public final class Stdout2Ps implements Runnable {
         return escaped.toString();
     }
 
-    private void outputPage(OutputStream os, List<Line> allLines, int startLine, int endLine, int pageNumber) throws IOException {
-        // start the page
-        os.write(("%%Page: " + pageNumber + " " + pageNumber + "\n"
-                + "newpath\n").getBytes());
+    /** A number as short as PostScript allows: 1 rather than 1.0 */
+    private static String number(float f) {
+        return f == (int) f ? Integer.toString((int) f) : Float.toString(f);
+    }
+
+    /** The prolog defines short procedures, so each chunk in the body is one or two tokens:
+     one color procedure per palette entry, S to show, N to show and go to the next
+     line, nl for an empty line, and P to set up a page. */
+    private String prolog(List<Color> palette) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("%!PS-Adobe-3.0\n"
+                + "/Courier findfont 9 scalefont setfont\n"
+                + "/nl { currentpoint exch pop 12 sub 72 exch moveto } bind def\n"
+                + "/S /show load def\n"
+                + "/N { show nl } bind def\n");
+        for(int i = 0; i < palette.size(); i++) {
+            final Color color = palette.get(i);
+            sb.append("/c").append(i).append(" { ").append(number(color.r())).append(' ')
+                    .append(number(color.g())).append(' ').append(number(color.b())).append(" setrgbcolor } bind def\n");
+        }
         if(header != null && ! header.isBlank()) {
-            os.write(("gsave\n"
+            sb.append("/headertext (").append(escapePostscriptString(header)).append(") def\n"
+                    + "/hd { gsave\n"
                     + "/Helvetica-Bold findfont 14 scalefont setfont\n"
-                    + "/headertext (" + escapePostscriptString(header) + ") def\n"
-                            + "currentpagedevice /PageSize get aload pop  % Puts [width height] array on stack, then width and height\n" +
-                            "/PageHeight exch def                     % Pop height and define PageHeight\n" +
-                            "/PageWidth exch def  "
-                            + "headertext stringwidth pop\n"
-                            + "PageWidth exch sub 2 div\n"
-                            + "PageHeight 60 sub moveto\n"
-                            + "headertext show\n"
-                            + "grestore\n").getBytes());
+                    + "currentpagedevice /PageSize get aload pop  % Puts [width height] array on stack, then width and height\n"
+                    + "/PageHeight exch def                     % Pop height and define PageHeight\n"
+                    + "/PageWidth exch def\n"
+                    + "headertext stringwidth pop\n"
+                    + "PageWidth exch sub 2 div\n"
+                    + "PageHeight 60 sub moveto\n"
+                    + "headertext show\n"
+                    + "grestore } bind def\n"
+                    + "/P { newpath hd 72 700 moveto } bind def\n");
+        } else {
+            sb.append("/P { newpath 72 700 moveto } bind def\n");
         }
-        os.write(("72 700 moveto\n").getBytes());
+        sb.append("%%EndProlog\n");
+        return sb.toString();
+    }
+
+    private void outputPage(OutputStream os, List<Line> allLines, List<Color> palette,
+            int startLine, int endLine, int pageNumber) throws IOException {
+        // start the page
+        final StringBuilder sb = new StringBuilder();
+        sb.append("%%Page: ").append(pageNumber).append(' ').append(pageNumber).append("\nP\n");
+        Color current = null;
         for(int lineNumber = startLine; lineNumber < endLine; lineNumber++) {
             final Line line = allLines.get(lineNumber);
-            for(Chunk c : line.chunks()) {
-                final Color color = c.color();
-                os.write((color.r() + " " + color.g() + " " + color.b() + " setrgbcolor\n").getBytes());
-                os.write(("(" + escapePostscriptString(c.text()) + ") show\n").getBytes());
+            final List<Chunk> chunks = line.chunks();
+            if(chunks.isEmpty() && ! line.overflow()) {
+                sb.append("nl\n");
+                continue;
+            }
+            for(int i = 0; i < chunks.size(); i++) {
+                final Chunk c = chunks.get(i);
+                if(! c.color().equals(current)) {
+                    current = c.color();
+                    sb.append('c').append(palette.indexOf(current));
+                }
+                final boolean last = i == chunks.size() - 1 && ! line.overflow();
+                sb.append('(').append(escapePostscriptString(c.text())).append(')').append(last ? "N\n" : "S ");
             }
             if(line.overflow()) {
-                os.write(("0 0 0 setrgbcolor\n"
-                        + "( ...) show\n").getBytes());
-                
+                if(! Color.BLACK.equals(current)) {
+                    current = Color.BLACK;
+                    sb.append(blackProcedure(palette));
+                }
+                sb.append("( ...)N\n");
             }
-            os.write(("72 " + (700 - (lineNumber - startLine + 1) * 12) + " moveto\n").getBytes());
         }
-        os.write("showpage\n".getBytes());
+        sb.append("showpage\n");
+        os.write(sb.toString().getBytes());
+    }
+
+    /** The color procedure for black, which overflow markers are shown in */
+    private static String blackProcedure(List<Color> palette) {
+        final int index = palette.indexOf(Color.BLACK);
+        return index < 0 ? "0 0 0 setrgbcolor" : "c" + index;
     }
 
-    private void generatePs(List<Line> allLines) throws IOException {
+    private void generatePs(LineStore allLines) throws IOException {
         if(allLines == null) {
             err.println("null argument");
             return;
         }
         final OutputStream os =
                 outputFile == null ? System.out : new FileOutputStream(outputFile);
-        os.write("%!PS-Adobe-3.0\n".getBytes());
-        os.write(("% Define a procedure to move to the next line\n" +
-            "% Assumes a line spacing of 1.2 times the font size\n" +
-            "/nextline {\n" +
-            "    currentpoint pop           % Get current X, discard Y\n" +
-            "    -14 rmoveto                % Move down 14 points (adjust as needed)\n" +
-            "} def\n"
-            + "/Courier findfont 9 scalefont setfont\n").getBytes());
-
+        final List<Color> palette = allLines.palette();
+        os.write(prolog(palette).getBytes());
 
         if(allLines.isEmpty()) {
             err.println("No lines read");
@@ -140,33 +175,29 @@ public final class Stdout2Ps implements Runnable {
 
         // output all the full pages first. This could be zero full pages
         for(int pageNumber = 0; pageNumber < numberOfFullPages; pageNumber++) {
-            outputPage(os, allLines, pageNumber * linesPerPage,
+            outputPage(os, allLines, palette, pageNumber * linesPerPage,
                     pageNumber * linesPerPage + linesPerPage, pageNumber + 1);
 
         }
         // if there is a partial page output that too
         if(allLines.size() % linesPerPage != 0) {
-            outputPage(os, allLines, numberOfFullPages * linesPerPage, allLines.size(), numberOfFullPages + 1);
+            outputPage(os, allLines, palette, numberOfFullPages * linesPerPage, allLines.size(), numberOfFullPages + 1);
         }
 
         // Trailer
         os.write(("%%EOF\n").getBytes());
     }
 
-    private List<Line> readInput() throws IOException {
-        final BufferedReader br;
-        List<Line> allLines = null;
-        if (inputFile != null) {
-            br = new BufferedReader(new FileReader(inputFile));
-        } else {
-            br = new BufferedReader(new InputStreamReader(System.in,  StandardCharsets.UTF_8));
-        }
+    private LineStore readInput() throws IOException {
+        final LineReader reader =
+                new LineReader(inputFile != null ? new FileInputStream(inputFile) : System.in);
+        LineStore allLines = null;
         try {
-            allLines = PageMaker.makeLines(br);
+            allLines = PageMaker.makeLines(reader);
         } catch(Exception ie) {
             err.println("caught: " + ie.getMessage());
         } finally {
-            br.close();
+            reader.close();
         }
         return allLines;
     }
@@ -178,8 +209,7 @@ public final class Stdout2Ps implements Runnable {
 
     @Override
     public void run() {
-        try {
-            final List<Line> allLines = readInput();
+        try (LineStore allLines = readInput()) {
             generatePs(allLines);
         } catch (IOException e) {
             err.println("Error: " + e.getMessage());
@@ -5,7 +5,9 @@ import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -15,25 +17,63 @@ import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Collections;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.InputStreamReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import static chiralsoftware.stdout2pdf.Color.BLACK;
 import static java.lang.System.err;
-import static java.nio.charset.StandardCharsets.UTF_8;
 
 @Command(name = "Stdout2pdf", mixinStandardHelpOptions = true, version = "1.0",
          description = "Converts ANSI-colored text from stdin or file to PDF directly (no libs).")
-public class Stdout2pdf2 implements Runnable {
+public class Stdout2pdf2 implements Callable<Integer> {
     @Parameters(index = "0", arity = "0..1", description = "Input log file (optional; defaults to stdin)")
     private String inputFile;
 
-    @Parameters(index = "1", arity = "1", description = "Output PDF file")
+    @Parameters(index = "1", arity = "0..1", description = "Output PDF file (optional; defaults to stdout)")
     private String outputFile;
 
     @Option(names = {"-h", "--header"}, description = "Optional header text for the PDF")
     private String header;
+
+    @Option(names = {"--index"}, description = "Page index sidecar file. Written while converting, "
+            + "or read with --pages to seek straight to the requested pages")
+    private String indexFile;
+
+    @Option(names = {"--index-interval"}, defaultValue = "100",
+            description = "Pages between checkpoints in the page index (default: 100)")
+    private int indexInterval;
+
+    @Option(names = {"--linearize"}, description = "Write a linearized (fast web view) PDF. "
+            + "Output only starts once all input has been read; pages after the first are spooled to a temp file")
+    private boolean linearize;
+
+    @Option(names = {"--compress"}, description = "Compress page content streams")
+    private boolean compress;
+
+    @Option(names = {"--cache"}, description = "Directory for a cache of rendered pages. "
+            + "Pages which are the same as in an earlier run are copied from it instead of rendered")
+    private String cacheDirectory;
+
+    @Option(names = {"--cache-size"}, defaultValue = "256",
+            description = "Page cache size limit in MB; least recently used pages are evicted (default: 256)")
+    private long cacheSize;
+
+    @Option(names = {"--pages"}, description = "Only render this page range, like 4200-4250 or 17")
+    private String pages;
     
     private static final int linesPerPage = 55;
+    private static final int inputBatchSize = 512;
+    private static final int queueDepth = 16;
+    private static final int outputBufferSize = 64 * 1024;
+
+    /** One line of input and the byte offset it starts at */
+    private record InputLine(String text, long offset) { }
 
     private static final Map<String, float[]> COLOR_MAP;
     static {
@@ -53,33 +93,204 @@ public class Stdout2pdf2 implements Runnable {
         System.exit(exitCode);
     }
 
+    /** @return the exit code: 0 when the PDF was written, 1 when it failed, 2 for bad options */
     @Override
-    public void run() {
-        try {
-            final List<Line> allLines = readInput();
-            generatePdf(allLines);
-            System.out.println("PS generated: " + outputFile);
+    public Integer call() {
+        final String problem = checkOptions();
+        if(problem != null) {
+            System.err.println("Error: " + problem);
+            return 2;
+        }
+        try (Pipeline pipeline = new Pipeline()) {
+            convert(pipeline);
+            // with no output file, stdout is the PDF
+            if(outputFile != null) System.out.println("PS generated: " + outputFile);
+            return 0;
         } catch (IOException e) {
             System.err.println("Error: " + e.getMessage());
+            return 1;
         }
     }
 
-    private List<Line> readInput() throws IOException {
-        final BufferedReader br;
-        List<Line> allLines = null;
+    /** Convert with a reader, a layout and a page rendering stage, each on its own
+     thread, while this thread writes the PDF as rendered pages arrive. */
+    private void convert(Pipeline pipeline) throws IOException {
+        final TextContext textContext = new TextContext();
+        textContext.setColor(BLACK);
+        PageIndex index = null;
+        long offset = 0;
+        long skip = 0;
+        long limit = Long.MAX_VALUE;
+        if(pages != null) {
+            final int firstPage = firstPage();
+            skip = (long) (firstPage - 1) * linesPerPage;
+            limit = (long) (lastPage() - firstPage + 1) * linesPerPage;
+            if(indexFile != null) {
+                if(inputFile == null) throw new IOException("--pages with --index needs an input file to seek in");
+                final PageIndex.Checkpoint checkpoint = PageIndex.read(Path.of(indexFile), linesPerPage,
+                        Files.size(Path.of(inputFile))).nearest(firstPage - 1);
+                offset = checkpoint.offset();
+                skip = (long) (firstPage - 1 - checkpoint.page()) * linesPerPage + checkpoint.skip();
+                textContext.setColor(checkpoint.color());
+            }
+        } else if(indexFile != null) {
+            index = new PageIndex(linesPerPage, indexInterval);
+        }
+
+        final InputStream is;
         if (inputFile != null) {
-            br = new BufferedReader(new FileReader(inputFile));
+            final FileInputStream fis = new FileInputStream(inputFile);
+            fis.getChannel().position(offset);
+            is = fis;
         } else {
-            br = new BufferedReader(new InputStreamReader(System.in, UTF_8));
+            is = System.in;
+        }
+        final LineReader reader = new LineReader(is, offset);
+        final PageMaker.Layout layout = new PageMaker.Layout(textContext, index);
+        final long skipLines = skip;
+        final long maxLines = limit;
+
+        final BlockingQueue<List<InputLine>> inputLines = pipeline.queue(queueDepth);
+        final BlockingQueue<List<Line>> pageLines = pipeline.queue(queueDepth);
+        final BlockingQueue<List<byte[]>> pageContents = pipeline.queue(queueDepth);
+
+        final Future<?> readStage = pipeline.start("reader", () -> readInput(reader, inputLines));
+        pipeline.start("layout", () -> {
+            // once the requested pages are laid out there is no point reading on
+            if(layoutPages(inputLines, pageLines, layout, skipLines, maxLines)) readStage.cancel(true);
+        });
+        final PageCache cache = cacheDirectory == null ? null
+                : new PageCache(Path.of(cacheDirectory), cacheSize * 1024 * 1024);
+        pipeline.start("render", () -> renderPages(pageLines, pageContents, cache));
+        final int pageCount;
+        try {
+            pageCount = linearize ? generateLinearizedPdf(pageContents) : generatePdf(pageContents);
+        } catch(InterruptedException ie) {
+            pipeline.checkFailure();
+            throw new IOException("interrupted");
+        }
+        pipeline.checkFailure();
+        if(pageCount == 0 && pages != null) {
+            // everything was skipped; the lines before the seek point count too
+            final long documentLines = (long) (firstPage() - 1) * linesPerPage - skipLines + layout.lineCount();
+            throw new IOException("page " + firstPage() + " is past the end of the document ("
+                    + (documentLines + linesPerPage - 1) / linesPerPage + " pages)");
+        }
+        if(pageCount == 0) err.println("No lines read");
+        if(index != null) index.write(Path.of(indexFile), reader.position());
+        if(cache != null) cache.evict();
+    }
+
+    /** Reader stage: read input lines, with their byte offsets, in batches */
+    private static void readInput(LineReader reader, BlockingQueue<List<InputLine>> inputLines)
+            throws IOException, InterruptedException {
+        try (reader) {
+            List<InputLine> batch = new ArrayList<>(inputBatchSize);
+            long offset = reader.position();
+            String line;
+            while((line = reader.readLine()) != null) {
+                batch.add(new InputLine(line, offset));
+                offset = reader.position();
+                if(batch.size() == inputBatchSize) {
+                    inputLines.put(batch);
+                    batch = new ArrayList<>(inputBatchSize);
+                }
+            }
+            if(! batch.isEmpty()) inputLines.put(batch);
+            inputLines.put(Pipeline.end());
+        }
+    }
+
+    /** Layout stage: lay out input lines and group them into pages, dropping the first
+     skip lines and stopping after limit lines. Returns true if it stopped before
+     the end of the input. */
+    private static boolean layoutPages(BlockingQueue<List<InputLine>> inputLines, BlockingQueue<List<Line>> pageLines,
+            PageMaker.Layout layout, long skip, long limit) throws InterruptedException {
+        List<Line> page = new ArrayList<>(linesPerPage);
+        long skipped = 0;
+        long kept = 0;
+        boolean stopped = false;
+        input:
+        for(List<InputLine> batch = inputLines.take(); ! Pipeline.isEnd(batch); batch = inputLines.take()) {
+            for(InputLine inputLine : batch) {
+                for(Line line : layout.add(inputLine.text(), inputLine.offset())) {
+                    if(skipped < skip) {
+                        skipped++;
+                        continue;
+                    }
+                    page.add(line);
+                    kept++;
+                    if(page.size() == linesPerPage) {
+                        pageLines.put(page);
+                        page = new ArrayList<>(linesPerPage);
+                    }
+                    if(kept == limit) {
+                        stopped = true;
+                        break input;
+                    }
+                }
+            }
+        }
+        if(! page.isEmpty()) pageLines.put(page);
+        pageLines.put(Pipeline.end());
+        return stopped;
+    }
+
+    /** Render stage: turn each page of lines into a content stream, or copy it from the cache */
+    private void renderPages(BlockingQueue<List<Line>> pageLines, BlockingQueue<List<byte[]>> pageContents,
+            PageCache cache) throws IOException, InterruptedException {
+        final String settings = "header=" + (header == null ? "" : header) + " compress=" + compress;
+        for(List<Line> page = pageLines.take(); ! Pipeline.isEnd(page); page = pageLines.take()) {
+            if(cache == null) {
+                pageContents.put(List.of(renderPage(page)));
+                continue;
+            }
+            final String key = PageCache.key(settings, page);
+            byte[] content = cache.get(key);
+            if(content == null) {
+                content = renderPage(page);
+                cache.put(key, content);
+            }
+            pageContents.put(List.of(content));
+        }
+        pageContents.put(Pipeline.end());
+    }
+
+    /** What is wrong with the options, or null if they are usable */
+    private String checkOptions() {
+        if(indexInterval <= 0) return "--index-interval must be positive: " + indexInterval;
+        if(cacheSize < 0) return "--cache-size can't be negative: " + cacheSize;
+        if(pages != null) {
+            try {
+                lastPage();
+            } catch(IllegalArgumentException iae) {
+                return iae.getMessage();
+            }
         }
+        return null;
+    }
+
+    /** First page of the --pages range, one-based */
+    private int firstPage() {
+        final String first = pages.contains("-") ? pages.substring(0, pages.indexOf('-')) : pages;
+        return parsePage(first);
+    }
+
+    /** Last page of the --pages range, one-based and inclusive */
+    private int lastPage() {
+        final int last = pages.contains("-") ? parsePage(pages.substring(pages.indexOf('-') + 1)) : firstPage();
+        if(last < firstPage()) throw new IllegalArgumentException("bad page range: " + pages);
+        return last;
+    }
+
+    private int parsePage(String s) {
         try {
-            allLines = PageMaker.makeLines(br);
-        } catch(Exception ie) {
-            System.err.println("caught: " + ie.getMessage());
-        } finally {
-            br.close();
+            final int result = Integer.parseInt(s.trim());
+            if(result < 1) throw new IllegalArgumentException("pages start at 1: " + pages);
+            return result;
+        } catch(NumberFormatException nfe) {
+            throw new IllegalArgumentException("bad page range: " + pages);
         }
-        return allLines;
     }
     
     private static String abbreviate(String s) {
@@ -87,91 +298,83 @@ public class Stdout2pdf2 implements Runnable {
         return s.substring(0,50) + " ...";
     }
     
-    private void outputPage(List<ByteArrayOutputStream> pageContents,
-            List<Line> allLines, int start, int end) throws IOException {
+    private byte[] renderPage(List<Line> lines) throws IOException {
         final ByteArrayOutputStream currentContent = new ByteArrayOutputStream();
         startNewPage(currentContent);
-        for(int i = start; i < end; i++) {
-            addLine(currentContent, allLines.get(i), pageContents);
+        for(Line line : lines) {
+            addLine(currentContent, line);
         }
         currentContent.write("\nET\n".getBytes());
-        pageContents.add(currentContent);
+        if(! compress) return currentContent.toByteArray();
+        final ByteArrayOutputStream deflated = new ByteArrayOutputStream(currentContent.size() / 4);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(deflated)) {
+            currentContent.writeTo(dos);
+        }
+        return deflated.toByteArray();
     }
 
-    private void generatePdf(List<Line> allLines) throws IOException {
-        if(allLines == null) {
-            err.println("null argument");
-            return;
-        }
-        try (OutputStream os = new FileOutputStream(outputFile)) {
-            // PDF header
-            os.write("%PDF-1.4\n".getBytes());
-            os.write(new byte[] { '%', (byte)226, (byte)227, (byte)239, (byte)243, '\n' });
+    /** The output file, or stdout, buffered and counting bytes so offsets are known
+     without seeking. That works for pipes and sockets too. Stdout is opened as a plain
+     file descriptor, because System.out is a PrintStream which hides write errors like
+     a broken pipe or a full disk. */
+    private CountingOutputStream openOutput() throws IOException {
+        final OutputStream os = outputFile == null ? new FileOutputStream(FileDescriptor.out)
+                : new FileOutputStream(outputFile);
+        return new CountingOutputStream(new BufferedOutputStream(os, outputBufferSize));
+    }
 
-            List<Integer> offsets = new ArrayList<>();
-            offsets.add(0); // Dummy for index 0
+    /** Writer stage for --linearize: collect every rendered page, spooling all but
+     the first to disk, then write them with the first page up front. Returns the page count. */
+    private int generateLinearizedPdf(BlockingQueue<List<byte[]>> pageContents) throws IOException, InterruptedException {
+        try (LinearizedPdf pdf = new LinearizedPdf(compress)) {
+            for(List<byte[]> batch = pageContents.take(); ! Pipeline.isEnd(batch); batch = pageContents.take()) {
+                for(byte[] pageContent : batch) pdf.addPage(pageContent);
+            }
+            // a PDF with no pages can't be linearized, so write it the usual way
+            if(pdf.pageCount() == 0) return generatePdf(new ArrayBlockingQueue<>(1, false, List.of(Pipeline.end())));
+            try (OutputStream os = openOutput()) {
+                pdf.write(os);
+            }
+            return pdf.pageCount();
+        }
+    }
 
-            // Collect content streams for each page
-            List<ByteArrayOutputStream> pageContents = new ArrayList<>();
+    /** Writer stage: write the PDF as rendered pages arrive. The page tree is
+     written last, because only then is the page count known. Returns the page count. */
+    private int generatePdf(BlockingQueue<List<byte[]>> pageContents) throws IOException, InterruptedException {
+        try (CountingOutputStream os = openOutput()) {
+            writeHeader(os);
 
-            if(allLines.isEmpty()) {
-                err.println("No lines read");
-            }
+            List<Long> offsets = new ArrayList<>();
+            offsets.add(0L); // Dummy for index 0
 
-            final int numberOfFullPages = allLines.size() / linesPerPage;
-            
-            // output all the full pages first. This could be zero full pages
-            for(int pageNumber = 0; pageNumber < numberOfFullPages; pageNumber++) {
-                outputPage(pageContents, allLines, pageNumber * linesPerPage, 
-                        pageNumber * linesPerPage + linesPerPage);
-                
-            }
-            // if there is a partial page output that too
-            if(allLines.size() % linesPerPage != 0) {
-                outputPage(pageContents, allLines, numberOfFullPages * linesPerPage, allLines.size());
-            }
-    
             // Write objects
             // Object 1: Catalog
-            final ByteArrayOutputStream catalog = new ByteArrayOutputStream();
-            catalog.write("<< /Type /Catalog /Pages 2 0 R >>".getBytes());
-            writeObject(os, 1, catalog.toByteArray(), offsets);
+            writeObject(os, 1, catalogObject(2), offsets);
 
-            // Object 2: Pages
-            final ByteArrayOutputStream pages = new ByteArrayOutputStream();
-            pages.write(("<< /Type /Pages /Count " + pageContents.size() + " /Kids [").getBytes());
-            for (int i = 0; i < pageContents.size(); i++) {
-                pages.write(( (3 + i * 2) + " 0 R ").getBytes());
-            }
-            pages.write("] >>".getBytes());
-            writeObject(os, 2, pages.toByteArray(), offsets);
-
-            int objNum = 3;
-            
-            final int fontRef = pageContents.size() * 2 + 3; // Font after all pages/contents
-            for (ByteArrayOutputStream pageContent : pageContents) {
-                // Page object
-                final ByteArrayOutputStream page = new ByteArrayOutputStream();
-                page.write(("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] /Contents " + (objNum + 1) + " 0 R /Resources << /Font << /F1 " + fontRef + " 0 R >> >> >>").getBytes());
-                writeObject(os, objNum, page.toByteArray(), offsets);
-                objNum++;
-
-                // Content object
-                final ByteArrayOutputStream contentObj = new ByteArrayOutputStream();
-                contentObj.write(("<< /Length " + pageContent.size() + " >>\nstream\n").getBytes());
-                contentObj.write(pageContent.toByteArray());
-                contentObj.write("\nendstream".getBytes());
-                writeObject(os, objNum, contentObj.toByteArray(), offsets);
-                objNum++;
+            // Object 2 is the page tree, which comes after the pages
+
+            // Object 3: Font
+            writeObject(os, 3, fontObject(), offsets);
+
+            int objNum = 4;
+            for(List<byte[]> batch = pageContents.take(); ! Pipeline.isEnd(batch); batch = pageContents.take()) {
+                for (byte[] pageContent : batch) {
+                    writeObject(os, objNum, pageObject(2, objNum + 1, 3), offsets);
+                    objNum++;
+                    writeObject(os, objNum, contentObject(pageContent, compress), offsets);
+                    objNum++;
+                }
             }
+            final int pageCount = (objNum - 4) / 2;
 
-            // Font object
-            final ByteArrayOutputStream font = new ByteArrayOutputStream();
-            font.write("<< /Type /Font /Subtype /Type1 /BaseFont /Courier >>".getBytes());
-            writeObject(os, objNum, font.toByteArray(), offsets);
+            // Object 2: Pages
+            final List<Integer> kids = new ArrayList<>();
+            for (int i = 0; i < pageCount; i++) kids.add(4 + i * 2);
+            writeObject(os, 2, pagesObject(kids), offsets);
 
             // xref
-            final int xrefOffset = (int) ((FileOutputStream) os).getChannel().position();
+            final long xrefOffset = os.count();
             os.write(("xref\n0 " + offsets.size() + "\n0000000000 65535 f \n").getBytes());
             for (int i = 1; i < offsets.size(); i++) {
                 os.write(String.format("%010d 00000 n \n", offsets.get(i)).getBytes());
@@ -179,6 +382,7 @@ public class Stdout2pdf2 implements Runnable {
 
             // Trailer
             os.write(("trailer\n<< /Size " + offsets.size() + " /Root 1 0 R >> \nstartxref\n" + xrefOffset + "\n%%EOF\n").getBytes());
+            return pageCount;
         }
     }
     
@@ -197,8 +401,47 @@ public class Stdout2pdf2 implements Runnable {
         }
     }
 
-    private static void writeObject(OutputStream os, int objNum, byte[] content, List<Integer> offsets) throws IOException {
-        offsets.add((int) ((FileOutputStream) os).getChannel().position());
+    static void writeHeader(OutputStream os) throws IOException {
+        os.write("%PDF-1.4\n".getBytes());
+        os.write(new byte[] { '%', (byte)226, (byte)227, (byte)239, (byte)243, '\n' });
+    }
+
+    static byte[] catalogObject(int pagesRef) {
+        return ("<< /Type /Catalog /Pages " + pagesRef + " 0 R >>").getBytes();
+    }
+
+    static byte[] pagesObject(List<Integer> kids) throws IOException {
+        final ByteArrayOutputStream pages = new ByteArrayOutputStream();
+        pages.write(("<< /Type /Pages /Count " + kids.size() + " /Kids [").getBytes());
+        for (int kid : kids) {
+            pages.write((kid + " 0 R ").getBytes());
+        }
+        pages.write("] >>".getBytes());
+        return pages.toByteArray();
+    }
+
+    static byte[] pageObject(int parentRef, int contentsRef, int fontRef) {
+        return ("<< /Type /Page /Parent " + parentRef + " 0 R /MediaBox [0 0 612 792] /Contents " + contentsRef
+                + " 0 R /Resources << /Font << /F1 " + fontRef + " 0 R >> >> >>").getBytes();
+    }
+
+    static byte[] contentObject(byte[] pageContent, boolean deflated) throws IOException {
+        final ByteArrayOutputStream contentObj = new ByteArrayOutputStream();
+        contentObj.write(("<< /Length " + pageContent.length + (deflated ? " /Filter /FlateDecode" : "")
+                + " >>\nstream\n").getBytes());
+        contentObj.write(pageContent);
+        contentObj.write("\nendstream".getBytes());
+        return contentObj.toByteArray();
+    }
+
+    static byte[] fontObject() {
+        return "<< /Type /Font /Subtype /Type1 /BaseFont /Courier >>".getBytes();
+    }
+
+    /** Write an object and record its offset. Objects can be written in any order. */
+    private static void writeObject(CountingOutputStream os, int objNum, byte[] content, List<Long> offsets) throws IOException {
+        while(offsets.size() <= objNum) offsets.add(0L);
+        offsets.set(objNum, os.count());
         os.write((objNum + " 0 obj\n").getBytes());
         os.write(content);
         os.write("\nendobj\n".getBytes());
@@ -208,8 +451,7 @@ public class Stdout2pdf2 implements Runnable {
         return s.replace("\\", "\\\\").replace("(", "\\(").replace(")", "\\)");
     }
 
-    private int addLine(ByteArrayOutputStream currentContent,  
-        Line line, List<ByteArrayOutputStream> pageContents) throws IOException {
+    private void addLine(ByteArrayOutputStream currentContent, Line line) throws IOException {
         final List<Chunk> chunks = line.chunks();
         for(Chunk c : chunks) {
             final Color color = c.color();
@@ -219,6 +461,5 @@ public class Stdout2pdf2 implements Runnable {
         }
         if(line.overflow()) currentContent.write(" 0 0 0 rg\n( ...) Tj\n".getBytes());
         currentContent.write("T*\n".getBytes());
-        return 0;
     }
 }
@@ -0,0 +1,158 @@
+package chiralsoftware.stdout2pdf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A lightweight terminal model for one input line. Progress bars and
+ * spinners redraw a line with carriage returns, backspaces, erase-line and
+ * cursor movement codes. Playing those against a row of cells leaves only
+ * what a terminal would finally show, so the intermediate redraws never
+ * reach layout.
+ */
+final class VirtualLine {
+
+    private static final int tabWidth = 8;
+
+    /** Cursor movement stops at this column, like a terminal stops at its width,
+     so a huge ESC[nC or ESC[nG can't make us pad a huge line. Text written past it
+     still extends the line, since that came from the input itself. */
+    private static final int maxColumn = 1024;
+
+    /** CSI sequences, including private ones like ESC[?25l, and OSC sequences like window titles */
+    private static final Pattern ESCAPE_PATTERN =
+            Pattern.compile("\u001B\\[[?;\\d]*[A-Za-z]|\u001B\\][^\u0007\u001B]*(?:\u0007|\u001B\\\\)");
+
+    private char[] text = new char[128];
+    private Color[] colors = new Color[128];
+    private int length = 0;
+    private int cursor = 0;
+    private Color color;
+
+    private VirtualLine(Color color) {
+        this.color = color;
+    }
+
+    /** Turn one input line into tokens holding only its final visible state. The
+     last token sets the color that was current at the end of the line. */
+    static List<Token> tokens(String s, Color startColor) {
+        if(isPlain(s)) {
+            final List<Token> result = new ArrayList<>(1);
+            if(! s.isEmpty()) result.add(new StringToken(s));
+            return result;
+        }
+        final VirtualLine line = new VirtualLine(startColor);
+        final Matcher matcher = ESCAPE_PATTERN.matcher(s);
+        int lastEnd = 0;
+        while(matcher.find()) {
+            line.write(s, lastEnd, matcher.start());
+            line.escape(matcher.group());
+            lastEnd = matcher.end();
+        }
+        line.write(s, lastEnd, s.length());
+        return line.tokens();
+    }
+
+    /** True if there are no control characters, so the line is its own final state */
+    private static boolean isPlain(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if(c < ' ' || c == '\u007F') return false;
+        }
+        return true;
+    }
+
+    private void write(String s, int start, int end) {
+        for(int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            switch(c) {
+                case '\r' -> cursor = 0;
+                case '\b' -> cursor = Math.max(0, cursor - 1);
+                case '\t' -> moveTo((cursor / tabWidth + 1) * tabWidth);
+                default -> {
+                    // other control characters, and escapes we don't know, don't print anything
+                    if(c >= ' ' && c != '\u007F') put(c);
+                }
+            }
+        }
+    }
+
+    private void put(char c) {
+        if(cursor >= text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, cursor + 1));
+            colors = Arrays.copyOf(colors, text.length);
+        }
+        // moving the cursor past the end leaves blanks behind
+        while(length < cursor) {
+            text[length] = ' ';
+            colors[length] = color;
+            length++;
+        }
+        text[cursor] = c;
+        colors[cursor] = color;
+        cursor++;
+        if(cursor > length) length = cursor;
+    }
+
+    private void escape(String sequence) {
+        if(sequence.charAt(1) != '[') return; // OSC
+        final char command = sequence.charAt(sequence.length() - 1);
+        final String parameter = sequence.substring(2, sequence.length() - 1);
+        switch(command) {
+            case 'm' -> color = new ColorToken(sequence).color();
+            case 'K' -> eraseLine(number(parameter, 0));
+            case 'C' -> moveTo((long) cursor + Math.max(1, number(parameter, 1)));
+            case 'D' -> moveTo((long) cursor - Math.max(1, number(parameter, 1)));
+            case 'G' -> moveTo(Math.max(1, number(parameter, 1)) - 1L);
+            default -> { } // moving to other lines, clearing the screen and so on can't be shown on paper
+        }
+    }
+
+    /** Move the cursor, clamped to the start of the line and to the last column
+     it may move to: maxColumn, or the end of the text if that is further */
+    private void moveTo(long column) {
+        cursor = (int) Math.max(0, Math.min(column, Math.max(length, maxColumn)));
+    }
+
+    /** ESC[K or ESC[0K erase to the end of the line, ESC[1K to the cursor, ESC[2K the whole line */
+    private void eraseLine(int mode) {
+        switch(mode) {
+            case 0 -> length = Math.min(length, cursor);
+            case 1 -> {
+                for(int i = 0; i <= cursor && i < length; i++) {
+                    text[i] = ' ';
+                    colors[i] = color;
+                }
+            }
+            case 2 -> length = 0;
+            default -> { }
+        }
+    }
+
+    private static int number(String parameter, int defaultValue) {
+        if(parameter.isEmpty() || ! parameter.chars().allMatch(Character::isDigit)) return defaultValue;
+        try {
+            return Integer.parseInt(parameter);
+        } catch(NumberFormatException nfe) {
+            return defaultValue;
+        }
+    }
+
+    private List<Token> tokens() {
+        final List<Token> result = new ArrayList<>();
+        int runStart = 0;
+        for(int i = 1; i <= length; i++) {
+            if(i == length || ! colors[i].equals(colors[runStart])) {
+                result.add(new ColorToken(colors[runStart]));
+                result.add(new StringToken(new String(text, runStart, i - runStart)));
+                runStart = i;
+            }
+        }
+        result.add(new ColorToken(color));
+        return result;
+    }
+
+}